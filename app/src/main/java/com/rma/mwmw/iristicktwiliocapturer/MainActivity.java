@@ -20,6 +20,8 @@ import com.twilio.video.LocalVideoTrack;
 import com.twilio.video.VideoCapturer;
 import com.twilio.video.VideoView;
 
+import java.io.File;
+import java.io.IOException;
 import java.time.Duration;
 
 public class MainActivity extends BaseActivity {
@@ -29,6 +31,14 @@ public class MainActivity extends BaseActivity {
     private static final String LOCAL_AUDIO_TRACK_NAME = "mic";
     private static final String LOCAL_VIDEO_TRACK_NAME = "camera";
 
+    /**
+     * Boolean extra recording a capture trace of the glasses camera into the app's external files
+     * directory, e.g.
+     * {@code adb shell am start -n com.rma.mwmw.iristicktwiliocapturer/.MainActivity --ez capture_trace true}
+     * and then {@code adb pull /sdcard/Android/data/com.rma.mwmw.iristicktwiliocapturer/files/}.
+     */
+    public static final String EXTRA_CAPTURE_TRACE = "capture_trace";
+
     private VideoCapturer currentCapturer;
     private LocalAudioTrack localAudioTrack;
     private LocalVideoTrack localVideoTrack;
@@ -136,6 +146,8 @@ public class MainActivity extends BaseActivity {
         if(useGlasses) {
             // Use our custom capturer
             currentCapturer = new IristickTwilioCapturer(this, "0", headset, iristickTwilioCapturerListener);
+            if (getIntent().getBooleanExtra(EXTRA_CAPTURE_TRACE, false))
+                startTraceRecording((IristickTwilioCapturer) currentCapturer);
         }
         else {
             // Use Twilio's capturer
@@ -151,7 +163,30 @@ public class MainActivity extends BaseActivity {
         localVideoTrack.addRenderer(primaryVideoView);
     }
     private void releaseAudioAndVideoTracks() {
+        if (currentCapturer instanceof IristickTwilioCapturer)
+            ((IristickTwilioCapturer) currentCapturer).stopTraceRecording();
         localAudioTrack.release();
         localVideoTrack.release();
     }
+
+    private void startTraceRecording(IristickTwilioCapturer capturer) {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            Log.e(TAG, "No external storage for capture trace");
+            return;
+        }
+        File file = new File(dir, "capture-" + System.currentTimeMillis() + ".trace");
+        try {
+            capturer.startTraceRecording(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start capture trace " + file.getPath(), e);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (currentCapturer instanceof IristickTwilioCapturer)
+            ((IristickTwilioCapturer) currentCapturer).stopTraceRecording();
+        super.onDestroy();
+    }
 }
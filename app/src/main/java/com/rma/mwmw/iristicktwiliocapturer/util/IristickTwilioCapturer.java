@@ -23,6 +23,9 @@ import com.iristick.smartglass.core.camera.CaptureListener;
 import com.iristick.smartglass.core.camera.CaptureRequest;
 import com.iristick.smartglass.core.camera.CaptureResult;
 import com.iristick.smartglass.core.camera.CaptureSession;
+import com.rma.mwmw.iristicktwiliocapturer.trace.CaptureTrace;
+import com.rma.mwmw.iristicktwiliocapturer.trace.CaptureTraceRecorder;
+import com.rma.mwmw.iristicktwiliocapturer.trace.FramePipeline;
 import com.twilio.video.VideoCapturer;
 import com.twilio.video.VideoDimensions;
 import com.twilio.video.VideoFormat;
@@ -33,9 +36,13 @@ import org.webrtc.EglBase;
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.VideoSink;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 public class IristickTwilioCapturer implements VideoCapturer {
@@ -74,6 +81,9 @@ public class IristickTwilioCapturer implements VideoCapturer {
 
     private ImageReader imageReader;
 
+    private Map<String, Object> currentParameters;
+    private volatile CaptureTraceRecorder traceRecorder;
+
 
     public IristickTwilioCapturer(
             @NonNull Context context,
@@ -178,6 +188,51 @@ public class IristickTwilioCapturer implements VideoCapturer {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Starts dumping the JPEG payloads, capture results and capture request parameters of this
+     * capturer to a {@link CaptureTrace}, which can be replayed with
+     * {@link com.rma.mwmw.iristicktwiliocapturer.trace.CaptureTraceReplayer}. Records are written
+     * on a dedicated thread. A trace that is already being recorded is stopped first.
+     *
+     * @param file destination of the trace.
+     * @throws IOException if the file cannot be created.
+     */
+    public void startTraceRecording(@NonNull File file) throws IOException {
+        final CaptureTraceRecorder _traceRecorder = new CaptureTraceRecorder(new CaptureTrace.Writer(file));
+        final CaptureTraceRecorder previous;
+        synchronized (stateLock) {
+            // Capture a live session's parameters, they are otherwise only recorded when they change.
+            if (currentParameters != null)
+                _traceRecorder.recordParameters(currentParameters);
+            previous = traceRecorder;
+            traceRecorder = _traceRecorder;
+        }
+        closeTraceRecorder(previous);
+        Log.i(TAG, "Recording capture trace to " + file.getPath());
+    }
+
+    /** Stops recording the capture trace, if any, after writing the pending records. */
+    public void stopTraceRecording() {
+        final CaptureTraceRecorder previous;
+        synchronized (stateLock) {
+            previous = traceRecorder;
+            traceRecorder = null;
+        }
+        closeTraceRecorder(previous);
+    }
+
+    private void closeTraceRecorder(CaptureTraceRecorder _traceRecorder) {
+        if (_traceRecorder == null)
+            return;
+        try {
+            _traceRecorder.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write capture trace", e);
+        }
+        if (_traceRecorder.getDroppedRecords() > 0)
+            Log.w(TAG, "Capture trace dropped " + _traceRecorder.getDroppedRecords() + " records");
+    }
+
     /**
      * Returns a list of all supported video formats. This list is based on what is specified by
      * {@link android.hardware.camera2.CameraCharacteristics}, so can vary based on a device's
@@ -281,37 +336,51 @@ public class IristickTwilioCapturer implements VideoCapturer {
         }
     };
 
-    private final ImageReader.OnImageAvailableListener imageReaderListener = new ImageReader.OnImageAvailableListener() {
-        @Override
-        public void onImageAvailable(ImageReader reader) {
-            Log.d(TAG, "onImageAvailable");
-            try (final Image image = reader.acquireLatestImage()) {
-                if (image == null) {
-                    Log.i(TAG, "No image available in callback");
-                    return;
-                }
-                Log.i(TAG, "image available in callback" + image.getFormat());
-
-                ByteBuffer _buffer = image.getPlanes()[0].getBuffer();
-                byte[] _bytes = new byte[_buffer.capacity()];
-                _buffer.get(_bytes);
-                Bitmap viewBitmap = BitmapFactory.decodeByteArray(_bytes, 0, _bytes.length, null);
+    // Shared with the trace replay, which swaps in a host decoder and output.
+    private final FramePipeline framePipeline = new FramePipeline(
+            jpeg -> {
+                Bitmap viewBitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, null);
+                if (viewBitmap == null)
+                    return null;
 
                 // Extract the frame from the bitmap
-                int bytes = viewBitmap.getByteCount();
-                ByteBuffer buffer = ByteBuffer.allocate(bytes);
+                ByteBuffer buffer = FramePipeline.allocateFrameBuffer(viewBitmap.getWidth(), viewBitmap.getHeight());
                 viewBitmap.copyPixelsToBuffer(buffer);
-
-                byte[] array = buffer.array();
+                return buffer;
+            },
+            (rgba, sensorTimestampNs) -> {
                 final long captureTimeNs =
                         TimeUnit.MILLISECONDS.toNanos(SystemClock.elapsedRealtime());
 
                 // Create video frame
                 VideoDimensions dimensions = new VideoDimensions(width, height);
-                VideoFrame videoFrame = new VideoFrame(array,
+                VideoFrame videoFrame = new VideoFrame(rgba,
                         dimensions, VideoFrame.RotationAngle.ROTATION_0, captureTimeNs);
 
                 videoCapturerListener.onFrameCaptured(videoFrame);
+            });
+
+    private final ImageReader.OnImageAvailableListener imageReaderListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Log.d(TAG, "onImageAvailable");
+            final long availableNs = System.nanoTime();
+            try (final Image image = reader.acquireLatestImage()) {
+                if (image == null) {
+                    Log.i(TAG, "No image available in callback");
+                    return;
+                }
+                Log.i(TAG, "image available in callback" + image.getFormat());
+
+                byte[] _bytes = FramePipeline.copyPayload(image.getPlanes()[0].getBuffer());
+                final CaptureTraceRecorder _traceRecorder = traceRecorder;
+                // Replays are paced by the image timestamps. They are not assumed to share a clock
+                // with CaptureResult.SENSOR_TIMESTAMP (unverified on a headset), so the replay
+                // never matches frames to capture results by timestamp.
+                if (_traceRecorder != null)
+                    _traceRecorder.recordFrame(availableNs, _bytes, image.getTimestamp());
+                if (!framePipeline.processFrame(_bytes, image.getTimestamp()))
+                    Log.w(TAG, "Failed to decode image");
                 //image.getPlanes()
 
 
@@ -382,6 +451,42 @@ public class IristickTwilioCapturer implements VideoCapturer {
         }
     };
 
+    private final CaptureListener captureListener = new CaptureListener() {
+        @Override
+        public void onCaptureStarted(CaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+        }
+
+        @Override
+        public void onCaptureCompleted(CaptureSession session, CaptureRequest request, CaptureResult result) {
+            final CaptureTraceRecorder _traceRecorder = traceRecorder;
+            if (_traceRecorder == null)
+                return;
+            // Values are formatted on the recorder thread.
+            final Map<String, Object> values = new LinkedHashMap<>();
+            values.put(CaptureTrace.KEY_SENSOR_TIMESTAMP, result.get(CaptureResult.SENSOR_TIMESTAMP));
+            values.put("sensor.exposureTime", result.get(CaptureResult.SENSOR_EXPOSURE_TIME));
+            values.put("sensor.frameDuration", result.get(CaptureResult.SENSOR_FRAME_DURATION));
+            values.put("sensor.sensitivity", result.get(CaptureResult.SENSOR_SENSITIVITY));
+            _traceRecorder.recordCaptureResult(values);
+        }
+
+        @Override
+        public void onCaptureFailed(CaptureSession session, CaptureRequest request, CaptureFailure failure) {
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(CaptureSession session, int sequenceId, long frameNumber) {
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(CaptureSession session, int sequenceId) {
+        }
+
+        @Override
+        public void onCaptureBufferLost(CaptureSession session, CaptureRequest request, Surface target, long frameNumber) {
+        }
+    };
+
     private void applyParametersInternal() {
         checkIsOnCameraThread();
         synchronized (stateLock) {
@@ -391,20 +496,34 @@ public class IristickTwilioCapturer implements VideoCapturer {
 
             CaptureRequest.Builder builder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             builder.addTarget(imageReader.getSurface());
-            builder.set(CaptureRequest.SENSOR_FRAME_DURATION, 1000000000L / frameRate);
-            setupCaptureRequest(builder);
-            captureSession.setRepeatingRequest(builder.build(), null, null);
-
+            final Map<String, Object> parameters = new LinkedHashMap<>();
+            parameters.put(CaptureTrace.KEY_WIDTH, width);
+            parameters.put(CaptureTrace.KEY_HEIGHT, height);
+            setParameter(builder, parameters, "sensor.frameDuration", CaptureRequest.SENSOR_FRAME_DURATION, 1000000000L / frameRate);
+            setupCaptureRequest(builder, parameters);
+            captureSession.setRepeatingRequest(builder.build(), captureListener, cameraThreadHandler);
+
+            currentParameters = parameters;
+            final CaptureTraceRecorder _traceRecorder = traceRecorder;
+            if (_traceRecorder != null)
+                _traceRecorder.recordParameters(parameters);
         }
     }
 
-    private void setupCaptureRequest(CaptureRequest.Builder builder) {
+    /** Sets the request parameters on the builder and mirrors them into the map recorded in capture traces. */
+    private void setupCaptureRequest(CaptureRequest.Builder builder, Map<String, Object> parameters) {
         Log.i(TAG, "setupCaptureRequest");
 
-        builder.set(CaptureRequest.SCALER_ZOOM, (float)(1 << Math.max(0, 2 - 1)));
-        builder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_OFF);
-        builder.set(CaptureRequest.LASER_MODE, CaptureRequest.LASER_MODE_OFF);
-        builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_OFF);
+        setParameter(builder, parameters, "scaler.zoom", CaptureRequest.SCALER_ZOOM, (float)(1 << Math.max(0, 2 - 1)));
+        setParameter(builder, parameters, "flash.mode", CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_OFF);
+        setParameter(builder, parameters, "laser.mode", CaptureRequest.LASER_MODE, CaptureRequest.LASER_MODE_OFF);
+        setParameter(builder, parameters, "control.afMode", CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_OFF);
+    }
+
+    private static <T> void setParameter(CaptureRequest.Builder builder, Map<String, Object> parameters,
+                                         String name, CaptureRequest.Key<T> key, T value) {
+        builder.set(key, value);
+        parameters.put(name, value);
     }
 
 
@@ -0,0 +1,243 @@
+package com.rma.mwmw.iristicktwiliocapturer.trace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary trace of a capture session, used to replay field recordings through the frame
+ * pipeline without a headset attached.
+ *
+ * <p>A trace starts with a small header followed by a sequence of records. Every record carries
+ * the time at which it was observed, relative to the start of the recording. Frames also carry
+ * their sensor timestamp, which is what a replay schedules them by. This class only depends on
+ * {@code java.*} so traces can be read on a plain JVM.
+ */
+public final class CaptureTrace {
+
+    /** Raw JPEG payload as delivered by the {@code ImageReader}. */
+    public static final byte TYPE_FRAME = 1;
+    /** Metadata of a {@code CaptureResult}. */
+    public static final byte TYPE_CAPTURE_RESULT = 2;
+    /** Parameters of a capture request submitted to the capture session. */
+    public static final byte TYPE_PARAMETERS = 3;
+    /**
+     * Number of records the recorder dropped since the previous such record, because it could not
+     * keep up. These frames were lost to the recording, not on the device.
+     */
+    public static final byte TYPE_RECORDER_DROPS = 4;
+
+    /**
+     * Capture result key holding the sensor timestamp. It is not known to share a clock with
+     * {@link Record#sensorTimestampNs}, so frames and results are not matched on it.
+     */
+    public static final String KEY_SENSOR_TIMESTAMP = "sensor.timestamp";
+    /** Parameter key holding the width of the captured frames. */
+    public static final String KEY_WIDTH = "width";
+    /** Parameter key holding the height of the captured frames. */
+    public static final String KEY_HEIGHT = "height";
+    /** Recorder drops key holding the number of dropped frames. */
+    public static final String KEY_DROPPED_FRAMES = "dropped.frames";
+    /** Recorder drops key holding the number of dropped capture results. */
+    public static final String KEY_DROPPED_CAPTURE_RESULTS = "dropped.captureResults";
+    /** Recorder drops key holding the number of dropped parameter records. */
+    public static final String KEY_DROPPED_PARAMETERS = "dropped.parameters";
+
+    /** Upper bound for a frame payload, far above any JPEG the headset produces. */
+    static final int MAX_PAYLOAD_LENGTH = 64 << 20;
+    /** Upper bound for the number of values in a record. */
+    static final int MAX_VALUES = 1 << 12;
+
+    private static final int MAGIC = 0x49544354; // "ITCT"
+    private static final short VERSION = 2;
+    /** Length of the header preceding the first record. */
+    static final int HEADER_LENGTH = 6;
+
+    private CaptureTrace() {}
+
+    /**
+     * Formats a metadata value for a trace. Arrays are expanded element by element so values can be
+     * compared between runs.
+     */
+    public static String formatValue(Object value) {
+        if (value instanceof Object[])
+            return Arrays.deepToString((Object[]) value);
+        if (value instanceof int[])
+            return Arrays.toString((int[]) value);
+        if (value instanceof long[])
+            return Arrays.toString((long[]) value);
+        if (value instanceof float[])
+            return Arrays.toString((float[]) value);
+        if (value instanceof double[])
+            return Arrays.toString((double[]) value);
+        if (value instanceof byte[])
+            return Arrays.toString((byte[]) value);
+        if (value instanceof short[])
+            return Arrays.toString((short[]) value);
+        if (value instanceof boolean[])
+            return Arrays.toString((boolean[]) value);
+        if (value instanceof char[])
+            return Arrays.toString((char[]) value);
+        return String.valueOf(value);
+    }
+
+    /** A single entry of a trace. */
+    public static final class Record {
+        public final byte type;
+        public final long timeNs;
+        public final long sensorTimestampNs;
+        public final byte[] payload;
+        public final Map<String, String> values;
+
+        Record(byte type, long timeNs, long sensorTimestampNs, byte[] payload, Map<String, String> values) {
+            this.type = type;
+            this.timeNs = timeNs;
+            this.sensorTimestampNs = sensorTimestampNs;
+            this.payload = payload;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Appends records to a trace. Methods may be called from any thread, but write synchronously;
+     * use a {@link CaptureTraceRecorder} to keep file I/O off the capture path.
+     *
+     * <p>Record times are {@link System#nanoTime()} values taken when the event was observed.
+     */
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final long startNs;
+        private boolean closed;
+
+        public Writer(File file) throws IOException {
+            this(new FileOutputStream(file));
+        }
+
+        public Writer(OutputStream stream) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            startNs = System.nanoTime();
+        }
+
+        public synchronized void writeFrame(long timeNs, byte[] jpeg, long sensorTimestampNs) throws IOException {
+            if (closed)
+                return;
+            writeRecordHeader(TYPE_FRAME, timeNs);
+            out.writeLong(sensorTimestampNs);
+            out.writeInt(jpeg.length);
+            out.write(jpeg);
+        }
+
+        public synchronized void writeCaptureResult(long timeNs, Map<String, ?> values) throws IOException {
+            writeValues(TYPE_CAPTURE_RESULT, timeNs, values);
+        }
+
+        public synchronized void writeParameters(long timeNs, Map<String, ?> values) throws IOException {
+            writeValues(TYPE_PARAMETERS, timeNs, values);
+        }
+
+        public synchronized void writeRecorderDrops(long timeNs, Map<String, ?> values) throws IOException {
+            writeValues(TYPE_RECORDER_DROPS, timeNs, values);
+        }
+
+        private void writeValues(byte type, long timeNs, Map<String, ?> values) throws IOException {
+            if (closed)
+                return;
+            writeRecordHeader(type, timeNs);
+            out.writeInt(values.size());
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(formatValue(entry.getValue()));
+            }
+        }
+
+        private void writeRecordHeader(byte type, long timeNs) throws IOException {
+            out.writeByte(type);
+            out.writeLong(Math.max(0, timeNs - startNs));
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            out.close();
+        }
+    }
+
+    /** Reads the records of a trace in the order they were written. */
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+
+        public Reader(File file) throws IOException {
+            this(new FileInputStream(file));
+        }
+
+        public Reader(InputStream stream) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a capture trace");
+            short version = in.readShort();
+            if (version != VERSION)
+                throw new IOException("Unsupported capture trace version " + version);
+        }
+
+        /** @return the next record, or {@code null} at the end of the trace. */
+        public Record next() throws IOException {
+            final int type = in.read();
+            if (type < 0)
+                return null;
+            try {
+                final long timeNs = in.readLong();
+                switch (type) {
+                    case TYPE_FRAME: {
+                        final long sensorTimestampNs = in.readLong();
+                        final int length = in.readInt();
+                        if (length < 0 || length > MAX_PAYLOAD_LENGTH)
+                            throw new IOException("Corrupt capture trace: frame length " + length);
+                        final byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        return new Record(TYPE_FRAME, timeNs, sensorTimestampNs, payload,
+                                Collections.<String, String>emptyMap());
+                    }
+                    case TYPE_CAPTURE_RESULT:
+                    case TYPE_PARAMETERS:
+                    case TYPE_RECORDER_DROPS: {
+                        final int count = in.readInt();
+                        if (count < 0 || count > MAX_VALUES)
+                            throw new IOException("Corrupt capture trace: value count " + count);
+                        final Map<String, String> values = new LinkedHashMap<>();
+                        for (int i = 0; i < count; i++)
+                            values.put(in.readUTF(), in.readUTF());
+                        return new Record((byte) type, timeNs, 0, null,
+                                Collections.unmodifiableMap(values));
+                    }
+                    default:
+                        throw new IOException("Unknown capture trace record type " + type);
+                }
+            } catch (EOFException e) {
+                // The recording was cut short, e.g. the app died before stopping the trace.
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.rma.mwmw.iristicktwiliocapturer.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records a {@link CaptureTrace} without blocking the capture path.
+ *
+ * <p>Records are handed to a bounded queue and written by a dedicated thread. When the queue is
+ * full the record is dropped and counted rather than stalling the caller, so recording does not
+ * change the workload it describes. Drop counts are written to the trace as
+ * {@link CaptureTrace#TYPE_RECORDER_DROPS} records, so a replay can tell them apart from frames
+ * lost on the device. Metadata values are only formatted on the writer thread.
+ */
+public final class CaptureTraceRecorder implements Closeable {
+
+    /** Default number of records that may wait for the writer thread. */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private static final class Entry {
+        final byte type;
+        final long timeNs;
+        final long sensorTimestampNs;
+        final byte[] payload;
+        final Map<String, ?> values;
+
+        Entry(byte type, long timeNs, long sensorTimestampNs, byte[] payload, Map<String, ?> values) {
+            this.type = type;
+            this.timeNs = timeNs;
+            this.sensorTimestampNs = sensorTimestampNs;
+            this.payload = payload;
+            this.values = values;
+        }
+    }
+
+    private static final Entry END = new Entry((byte) 0, 0, 0, null, null);
+
+    private final CaptureTrace.Writer writer;
+    private final BlockingQueue<Entry> queue;
+    private final Thread thread;
+    private final AtomicInteger droppedRecords = new AtomicInteger();
+    private volatile IOException failure;
+
+    private final Object lock = new Object();
+    private boolean closed;
+    // Drops not yet written to the trace, guarded by lock.
+    private int droppedFrames;
+    private int droppedCaptureResults;
+    private int droppedParameters;
+
+    public CaptureTraceRecorder(CaptureTrace.Writer writer) {
+        this(writer, DEFAULT_CAPACITY);
+    }
+
+    public CaptureTraceRecorder(CaptureTrace.Writer writer, int capacity) {
+        this.writer = writer;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::drain, "CaptureTraceRecorder");
+        this.thread.start();
+    }
+
+    /**
+     * @param timeNs {@link System#nanoTime()} at which the frame became available.
+     * @param jpeg the payload; it is written later and must not be modified afterwards.
+     */
+    public void recordFrame(long timeNs, byte[] jpeg, long sensorTimestampNs) {
+        offer(new Entry(CaptureTrace.TYPE_FRAME, timeNs, sensorTimestampNs, jpeg, null));
+    }
+
+    /** @param values the result metadata; it is formatted later and must not be modified afterwards. */
+    public void recordCaptureResult(Map<String, ?> values) {
+        offer(new Entry(CaptureTrace.TYPE_CAPTURE_RESULT, System.nanoTime(), 0, null, values));
+    }
+
+    /** @param values the request parameters; they are formatted later and must not be modified afterwards. */
+    public void recordParameters(Map<String, ?> values) {
+        offer(new Entry(CaptureTrace.TYPE_PARAMETERS, System.nanoTime(), 0, null, values));
+    }
+
+    /** @return the number of records dropped because the writer could not keep up or had failed. */
+    public int getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    private void offer(Entry entry) {
+        synchronized (lock) {
+            // Checked under the lock so no record can be queued behind END.
+            if (closed)
+                return;
+            if (failure == null && queue.offer(entry))
+                return;
+            switch (entry.type) {
+                case CaptureTrace.TYPE_FRAME:
+                    droppedFrames++;
+                    break;
+                case CaptureTrace.TYPE_CAPTURE_RESULT:
+                    droppedCaptureResults++;
+                    break;
+                case CaptureTrace.TYPE_PARAMETERS:
+                    droppedParameters++;
+                    break;
+            }
+        }
+        droppedRecords.incrementAndGet();
+    }
+
+    private void writeDrops() throws IOException {
+        final int frames, captureResults, parameters;
+        synchronized (lock) {
+            if (droppedFrames == 0 && droppedCaptureResults == 0 && droppedParameters == 0)
+                return;
+            frames = droppedFrames;
+            captureResults = droppedCaptureResults;
+            parameters = droppedParameters;
+            droppedFrames = 0;
+            droppedCaptureResults = 0;
+            droppedParameters = 0;
+        }
+        final Map<String, Object> values = new LinkedHashMap<>();
+        values.put(CaptureTrace.KEY_DROPPED_FRAMES, frames);
+        values.put(CaptureTrace.KEY_DROPPED_CAPTURE_RESULTS, captureResults);
+        values.put(CaptureTrace.KEY_DROPPED_PARAMETERS, parameters);
+        writer.writeRecorderDrops(System.nanoTime(), values);
+    }
+
+    private void drain() {
+        while (true) {
+            final Entry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (failure != null) {
+                if (entry == END)
+                    return;
+                continue;
+            }
+            try {
+                writeDrops();
+                if (entry == END)
+                    return;
+                switch (entry.type) {
+                    case CaptureTrace.TYPE_FRAME:
+                        writer.writeFrame(entry.timeNs, entry.payload, entry.sensorTimestampNs);
+                        break;
+                    case CaptureTrace.TYPE_CAPTURE_RESULT:
+                        writer.writeCaptureResult(entry.timeNs, entry.values);
+                        break;
+                    case CaptureTrace.TYPE_PARAMETERS:
+                        writer.writeParameters(entry.timeNs, entry.values);
+                        break;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Writes the pending records and closes the trace. Blocks until the writer thread is done.
+     *
+     * @throws IOException if writing any record or closing the trace failed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing capture trace");
+        } finally {
+            writer.close();
+        }
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,351 @@
+package com.rma.mwmw.iristicktwiliocapturer.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds a {@link CaptureTrace} back through a frame pipeline and measures how it keeps up.
+ *
+ * <p>Frames are released at the pace of their sensor timestamps, divided by the replay speed, so
+ * the replay follows the headset rather than the build that recorded the trace. Other records are
+ * released in trace order between the frames. Everything is handed to the {@link Sink} on a single
+ * pipeline thread, like the camera thread of the capturer.
+ *
+ * <p>Frame delivery mirrors the capturer's {@code ImageReader}: at most {@link #MAX_IMAGES} frames
+ * are held at once, including the one being processed, and only the most recent waiting frame is
+ * processed, so a slow pipeline shows up as dropped frames.
+ *
+ * <p>Frames the headset produced but the recording build never received are reported as missing.
+ * They are counted as capture results in excess of frames, since the image and result timestamps
+ * are not known to share a clock; this may be off by the few frames in flight when recording
+ * starts or stops. Frames the recorder itself dropped are reported separately.
+ *
+ * <p>Run {@link #main(String[])} on a plain JVM to compare a trace across builds.
+ */
+public final class CaptureTraceReplayer {
+
+    /** Same as the {@code maxImages} of the capturer's {@code ImageReader}. */
+    public static final int MAX_IMAGES = 2;
+
+    /** Receives the replayed records, always on the pipeline thread. */
+    public interface Sink {
+        void onFrame(byte[] jpeg, long sensorTimestampNs);
+        void onCaptureResult(Map<String, String> values);
+        void onParameters(Map<String, String> values);
+    }
+
+    /** Outcome of a replay. Latencies are measured from release of a frame to the end of its processing. */
+    public static final class Report {
+        /** Frames present in the trace. */
+        public final int framesRecorded;
+        /** Frames the headset produced that the recording build did not receive. */
+        public final int framesMissing;
+        /** Frames the recording build received but the recorder dropped, see {@link CaptureTraceRecorder}. */
+        public final int framesDroppedByRecorder;
+        /** Records of any type the recorder dropped. */
+        public final int recordsDroppedByRecorder;
+        public final int framesProcessed;
+        /** Frames dropped during the replay because the pipeline could not keep up. */
+        public final int framesDropped;
+        public final long durationNs;
+        private final long[] latenciesNs;
+
+        Report(int framesRecorded, int framesMissing, int framesDroppedByRecorder, int recordsDroppedByRecorder,
+               int framesProcessed, int framesDropped, long durationNs, long[] latenciesNs) {
+            this.framesRecorded = framesRecorded;
+            this.framesMissing = framesMissing;
+            this.framesDroppedByRecorder = framesDroppedByRecorder;
+            this.recordsDroppedByRecorder = recordsDroppedByRecorder;
+            this.framesProcessed = framesProcessed;
+            this.framesDropped = framesDropped;
+            this.durationNs = durationNs;
+            this.latenciesNs = latenciesNs;
+            Arrays.sort(this.latenciesNs);
+        }
+
+        /** @return processed frames per second of replay time. */
+        public double getThroughput() {
+            return durationNs > 0 ? framesProcessed * 1e9 / durationNs : 0;
+        }
+
+        /** @return the latency below which the given fraction of processed frames fall, in nanoseconds. */
+        public long getLatencyPercentileNs(double percentile) {
+            if (latenciesNs.length == 0)
+                return 0;
+            int idx = (int) Math.ceil(percentile / 100.0 * latenciesNs.length) - 1;
+            return latenciesNs[Math.max(0, Math.min(idx, latenciesNs.length - 1))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "frames=%d missing=%d recorderDropped=%d/%d processed=%d dropped=%d"
+                            + " throughput=%.2ffps latency p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                    framesRecorded, framesMissing, framesDroppedByRecorder,
+                    recordsDroppedByRecorder, framesProcessed, framesDropped, getThroughput(),
+                    toMillis(getLatencyPercentileNs(50)), toMillis(getLatencyPercentileNs(90)),
+                    toMillis(getLatencyPercentileNs(99)), toMillis(getLatencyPercentileNs(100)));
+        }
+
+        private static double toMillis(long ns) {
+            return ns / 1e6;
+        }
+    }
+
+    private static final class Pending {
+        final CaptureTrace.Record record;
+        final long releasedNs;
+
+        Pending(CaptureTrace.Record record, long releasedNs) {
+            this.record = record;
+            this.releasedNs = releasedNs;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private int queuedFrames;
+    private boolean frameInFlight;
+    private int framesDropped;
+    private boolean finished;
+
+    // Only touched by the pipeline thread until it has been joined.
+    private long[] latenciesNs;
+    private int framesProcessed;
+    private RuntimeException failure;
+
+    private final Sink sink;
+    private final double speed;
+
+    /**
+     * @param sink the pipeline to drive.
+     * @param speed replay speed relative to the recording, e.g. {@code 4} for four times faster.
+     *              A value of {@code 0} releases records as fast as possible.
+     */
+    public CaptureTraceReplayer(Sink sink, double speed) {
+        if (speed < 0)
+            throw new IllegalArgumentException("Negative replay speed");
+        this.sink = sink;
+        this.speed = speed;
+    }
+
+    /** Replays the whole trace and blocks until the pipeline has drained. */
+    public Report replay(CaptureTrace.Reader reader) throws IOException, InterruptedException {
+        synchronized (lock) {
+            queue.clear();
+            queuedFrames = 0;
+            frameInFlight = false;
+            framesDropped = 0;
+            finished = false;
+        }
+        latenciesNs = new long[64];
+        framesProcessed = 0;
+        failure = null;
+
+        Thread pipeline = new Thread(this::runPipeline, "CaptureTraceReplayer");
+        pipeline.start();
+
+        int framesRecorded = 0;
+        int captureResults = 0;
+        int framesDroppedByRecorder = 0;
+        int recordsDroppedByRecorder = 0;
+        final long startNs = System.nanoTime();
+        try {
+            long firstSensorTimestampNs = -1;
+            long firstReleaseNs = 0;
+            CaptureTrace.Record record;
+            while ((record = reader.next()) != null) {
+                if (record.type == CaptureTrace.TYPE_FRAME) {
+                    framesRecorded++;
+                    if (firstSensorTimestampNs < 0) {
+                        firstSensorTimestampNs = record.sensorTimestampNs;
+                        firstReleaseNs = System.nanoTime();
+                    } else if (speed > 0) {
+                        long offsetNs = (long) ((record.sensorTimestampNs - firstSensorTimestampNs) / speed);
+                        long delayNs = firstReleaseNs + offsetNs - System.nanoTime();
+                        if (delayNs > 0)
+                            TimeUnit.NANOSECONDS.sleep(delayNs);
+                    }
+                } else if (record.type == CaptureTrace.TYPE_CAPTURE_RESULT) {
+                    captureResults++;
+                } else if (record.type == CaptureTrace.TYPE_RECORDER_DROPS) {
+                    int frames = parseInt(record.values.get(CaptureTrace.KEY_DROPPED_FRAMES));
+                    int results = parseInt(record.values.get(CaptureTrace.KEY_DROPPED_CAPTURE_RESULTS));
+                    int parameters = parseInt(record.values.get(CaptureTrace.KEY_DROPPED_PARAMETERS));
+                    framesDroppedByRecorder += frames;
+                    captureResults += results;
+                    recordsDroppedByRecorder += frames + results + parameters;
+                    continue;
+                }
+                if (!release(record))
+                    break;
+            }
+        } finally {
+            synchronized (lock) {
+                finished = true;
+                lock.notifyAll();
+            }
+            pipeline.join();
+        }
+        if (failure != null)
+            throw failure;
+
+        final long durationNs = System.nanoTime() - startNs;
+        final int framesMissing = Math.max(0, captureResults - framesRecorded - framesDroppedByRecorder);
+        synchronized (lock) {
+            return new Report(framesRecorded, framesMissing, framesDroppedByRecorder, recordsDroppedByRecorder,
+                    framesProcessed, framesDropped, durationNs, Arrays.copyOf(latenciesNs, framesProcessed));
+        }
+    }
+
+    private static int parseInt(String value) {
+        if (value == null)
+            return 0;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void runPipeline() {
+        try {
+            Pending pending;
+            while ((pending = take()) != null) {
+                CaptureTrace.Record record = pending.record;
+                switch (record.type) {
+                    case CaptureTrace.TYPE_FRAME:
+                        try {
+                            sink.onFrame(record.payload, record.sensorTimestampNs);
+                        } finally {
+                            // Like closing the Image: the slot is only free once processing is done.
+                            synchronized (lock) {
+                                frameInFlight = false;
+                            }
+                        }
+                        if (framesProcessed == latenciesNs.length)
+                            latenciesNs = Arrays.copyOf(latenciesNs, latenciesNs.length * 2);
+                        latenciesNs[framesProcessed++] = System.nanoTime() - pending.releasedNs;
+                        break;
+                    case CaptureTrace.TYPE_CAPTURE_RESULT:
+                        sink.onCaptureResult(record.values);
+                        break;
+                    case CaptureTrace.TYPE_PARAMETERS:
+                        sink.onParameters(record.values);
+                        break;
+                }
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+            synchronized (lock) {
+                finished = true;
+                queue.clear();
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /** @return {@code false} if the pipeline has stopped. */
+    private boolean release(CaptureTrace.Record record) {
+        synchronized (lock) {
+            if (finished)
+                return false;
+            if (record.type == CaptureTrace.TYPE_FRAME) {
+                if (queuedFrames + (frameInFlight ? 1 : 0) == MAX_IMAGES) {
+                    // All images are in use: the camera has nowhere to put this frame.
+                    framesDropped++;
+                    return true;
+                }
+                queuedFrames++;
+            }
+            queue.add(new Pending(record, System.nanoTime()));
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /** Next record for the pipeline, skipping frames that have newer ones waiting, like {@code acquireLatestImage}. */
+    private Pending take() {
+        synchronized (lock) {
+            while (true) {
+                while (queue.isEmpty() && !finished) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+                Pending head = queue.poll();
+                if (head == null)
+                    return null;
+                if (head.record.type != CaptureTrace.TYPE_FRAME)
+                    return head;
+                queuedFrames--;
+                if (queuedFrames == 0) {
+                    frameInFlight = true;
+                    return head;
+                }
+                framesDropped++;
+            }
+        }
+    }
+
+    /**
+     * Runs each frame through the capturer's {@link FramePipeline}, decoding with
+     * {@link ImageIoDecoder} instead of {@code BitmapFactory}. The output stands in for building
+     * the Twilio {@code VideoFrame}, which needs the Android SDK.
+     */
+    static final class FramePipelineSink implements Sink {
+        private final FramePipeline pipeline;
+        private long checksum;
+        private int undecodableFrames;
+        private int parameterChanges;
+
+        FramePipelineSink(FramePipeline.Decoder decoder) {
+            pipeline = new FramePipeline(decoder, (rgba, sensorTimestampNs) -> {
+                // Keep the pixels observable so the work cannot be optimized away.
+                checksum += rgba.length + (rgba.length > 0 ? rgba[rgba.length / 2] : 0);
+            });
+        }
+
+        @Override
+        public void onFrame(byte[] jpeg, long sensorTimestampNs) {
+            if (!pipeline.processFrame(jpeg, sensorTimestampNs))
+                undecodableFrames++;
+        }
+
+        @Override
+        public void onCaptureResult(Map<String, String> values) {}
+
+        @Override
+        public void onParameters(Map<String, String> values) {
+            parameterChanges++;
+        }
+    }
+
+    /**
+     * Replays a trace through a {@link FramePipelineSink} and prints the {@link Report}.
+     *
+     * <p>Usage: {@code CaptureTraceReplayer <trace> [speed]}, see {@code capturetrace/build.gradle}
+     * for running it through Gradle.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: CaptureTraceReplayer <trace> [speed]");
+            System.exit(2);
+        }
+        final double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+        final FramePipelineSink sink = new FramePipelineSink(new ImageIoDecoder());
+        try (CaptureTrace.Reader reader = new CaptureTrace.Reader(new File(args[0]))) {
+            Report report = new CaptureTraceReplayer(sink, speed).replay(reader);
+            System.out.println(report + " undecodable=" + sink.undecodableFrames
+                    + " parameterChanges=" + sink.parameterChanges + " checksum=" + sink.checksum);
+        }
+    }
+}
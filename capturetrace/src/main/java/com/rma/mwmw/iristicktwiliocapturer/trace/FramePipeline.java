@@ -0,0 +1,61 @@
+package com.rma.mwmw.iristicktwiliocapturer.trace;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame handling of the capturer, from the JPEG payload of an image to the RGBA pixels handed to
+ * the video capturer listener. The device and {@link CaptureTraceReplayer} run this same code and
+ * only plug in a different {@link Decoder} and {@link Output}.
+ */
+public final class FramePipeline {
+
+    /** Bytes per pixel of the {@code RGBA_8888} frames handed to the video capturer listener. */
+    public static final int BYTES_PER_PIXEL = 4;
+
+    /** Decodes a JPEG payload into {@code RGBA_8888} pixels. */
+    public interface Decoder {
+        /**
+         * @return a buffer obtained from {@link #allocateFrameBuffer(int, int)} holding the pixels,
+         *         or {@code null} if the payload cannot be decoded.
+         */
+        ByteBuffer decode(byte[] jpeg);
+    }
+
+    /** Receives the decoded frames. */
+    public interface Output {
+        void onFrame(byte[] rgba, long sensorTimestampNs);
+    }
+
+    private final Decoder decoder;
+    private final Output output;
+
+    public FramePipeline(Decoder decoder, Output output) {
+        this.decoder = decoder;
+        this.output = output;
+    }
+
+    /** Copies the JPEG payload of an image plane into a new array. */
+    public static byte[] copyPayload(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.capacity()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /** Allocates the buffer receiving the decoded pixels of a frame. */
+    public static ByteBuffer allocateFrameBuffer(int width, int height) {
+        return ByteBuffer.allocate(width * height * BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Decodes a payload and hands the pixels to the output.
+     *
+     * @return {@code false} if the payload could not be decoded.
+     */
+    public boolean processFrame(byte[] jpeg, long sensorTimestampNs) {
+        ByteBuffer pixels = decoder.decode(jpeg);
+        if (pixels == null)
+            return false;
+        output.onFrame(pixels.array(), sensorTimestampNs);
+        return true;
+    }
+}
@@ -0,0 +1,40 @@
+package com.rma.mwmw.iristicktwiliocapturer.trace;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+/**
+ * {@link FramePipeline.Decoder} for the host JVM, standing in for {@code BitmapFactory} when
+ * replaying a trace. Not available on Android.
+ */
+public final class ImageIoDecoder implements FramePipeline.Decoder {
+
+    @Override
+    public ByteBuffer decode(byte[] jpeg) {
+        final BufferedImage image;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        } catch (IOException e) {
+            return null;
+        }
+        if (image == null)
+            return null;
+
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        final ByteBuffer buffer = FramePipeline.allocateFrameBuffer(width, height);
+        for (int pixel : argb) {
+            buffer.put((byte) (pixel >> 16));
+            buffer.put((byte) (pixel >> 8));
+            buffer.put((byte) pixel);
+            buffer.put((byte) (pixel >>> 24));
+        }
+        buffer.rewind();
+        return buffer;
+    }
+}
@@ -0,0 +1,318 @@
+package com.rma.mwmw.iristicktwiliocapturer.trace;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import java.awt.image.BufferedImage;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link CaptureTrace}, {@link CaptureTraceRecorder} and {@link CaptureTraceReplayer}.
+ */
+public class CaptureTraceTest {
+
+    private static byte[] frame(int i) {
+        return new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) i };
+    }
+
+    private static byte[] writeTrace(int frames) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (CaptureTrace.Writer writer = new CaptureTrace.Writer(out)) {
+            writer.writeParameters(System.nanoTime(), Collections.singletonMap("sensor.frameDuration", 33333333L));
+            for (int i = 0; i < frames; i++) {
+                writer.writeFrame(System.nanoTime(), frame(i), 1000L * i);
+                writer.writeCaptureResult(System.nanoTime(),
+                        Collections.singletonMap(CaptureTrace.KEY_SENSOR_TIMESTAMP, 1000L * i));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static CaptureTrace.Reader reader(byte[] trace) throws IOException {
+        return new CaptureTrace.Reader(new ByteArrayInputStream(trace));
+    }
+
+    private static class CountingSink implements CaptureTraceReplayer.Sink {
+        int framesSeen;
+        int parameterChanges;
+
+        @Override
+        public void onFrame(byte[] jpeg, long sensorTimestampNs) {
+            framesSeen++;
+        }
+
+        @Override
+        public void onCaptureResult(Map<String, String> values) {}
+
+        @Override
+        public void onParameters(Map<String, String> values) {
+            parameterChanges++;
+        }
+    }
+
+    @Test
+    public void trace_roundTrips() throws Exception {
+        try (CaptureTrace.Reader reader = reader(writeTrace(2))) {
+            CaptureTrace.Record record = reader.next();
+            assertEquals(CaptureTrace.TYPE_PARAMETERS, record.type);
+            assertEquals("33333333", record.values.get("sensor.frameDuration"));
+
+            record = reader.next();
+            assertEquals(CaptureTrace.TYPE_FRAME, record.type);
+            assertArrayEquals(frame(0), record.payload);
+            assertEquals(0, record.sensorTimestampNs);
+
+            record = reader.next();
+            assertEquals(CaptureTrace.TYPE_CAPTURE_RESULT, record.type);
+            assertEquals("0", record.values.get(CaptureTrace.KEY_SENSOR_TIMESTAMP));
+
+            record = reader.next();
+            assertEquals(1000, record.sensorTimestampNs);
+            assertTrue(record.timeNs >= 0);
+            assertNotNull(reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void trace_truncatedRecordEndsTrace() throws Exception {
+        byte[] trace = writeTrace(1);
+        byte[] truncated = new byte[trace.length - 4];
+        System.arraycopy(trace, 0, truncated, 0, truncated.length);
+        try (CaptureTrace.Reader reader = reader(truncated)) {
+            assertNotNull(reader.next());
+            assertNotNull(reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void trace_rejectsCorruptFrameLength() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CaptureTrace.Writer(out).close();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeByte(CaptureTrace.TYPE_FRAME);
+        data.writeLong(0);
+        data.writeLong(0);
+        data.writeInt(-1);
+        try (CaptureTrace.Reader reader = reader(out.toByteArray())) {
+            reader.next();
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void formatValue_expandsArrays() {
+        assertEquals("[1.0, 2.5]", CaptureTrace.formatValue(new float[] { 1f, 2.5f }));
+        assertEquals("[[1, 2], [3]]", CaptureTrace.formatValue(new int[][] { { 1, 2 }, { 3 } }));
+        assertEquals("42", CaptureTrace.formatValue(42L));
+    }
+
+    @Test
+    public void recorder_writesQueuedRecords() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CaptureTraceRecorder recorder = new CaptureTraceRecorder(new CaptureTrace.Writer(out), 4);
+        recorder.recordParameters(Collections.singletonMap("scaler.zoom", 2f));
+        recorder.recordFrame(System.nanoTime(), frame(7), 7000);
+        recorder.close();
+        recorder.recordFrame(System.nanoTime(), frame(8), 8000);
+
+        try (CaptureTrace.Reader reader = reader(out.toByteArray())) {
+            assertEquals("2.0", reader.next().values.get("scaler.zoom"));
+            assertArrayEquals(frame(7), reader.next().payload);
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void recorder_countsDropsWhenQueueFull() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Blocks the writer thread on its first write to the file.
+        OutputStream blocking = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writing.countDown();
+                await(unblock);
+                out.write(b, off, len);
+            }
+        };
+
+        CaptureTraceRecorder recorder = new CaptureTraceRecorder(new CaptureTrace.Writer(blocking), 1);
+        recorder.recordFrame(System.nanoTime(), new byte[1 << 17], 0);
+        await(writing);
+        recorder.recordFrame(System.nanoTime(), frame(1), 1000);
+        recorder.recordFrame(System.nanoTime(), frame(2), 2000);
+        recorder.recordCaptureResult(Collections.singletonMap(CaptureTrace.KEY_SENSOR_TIMESTAMP, 2000L));
+        assertEquals(2, recorder.getDroppedRecords());
+        unblock.countDown();
+        recorder.close();
+
+        CaptureTraceReplayer.Report report;
+        try (CaptureTrace.Reader reader = reader(out.toByteArray())) {
+            report = new CaptureTraceReplayer(new CountingSink(), 0).replay(reader);
+        }
+        assertEquals(2, report.framesRecorded);
+        assertEquals(1, report.framesDroppedByRecorder);
+        assertEquals(2, report.recordsDroppedByRecorder);
+        assertEquals(0, report.framesMissing);
+    }
+
+    @Test
+    public void replay_countsFramesMissingFromTrace() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (CaptureTrace.Writer writer = new CaptureTrace.Writer(out)) {
+            for (int i = 0; i < 6; i++) {
+                if (i != 1 && i != 3 && i != 5)
+                    writer.writeFrame(System.nanoTime(), frame(i), 1000L * i);
+                writer.writeCaptureResult(System.nanoTime(),
+                        Collections.singletonMap(CaptureTrace.KEY_SENSOR_TIMESTAMP, 1000L * i));
+            }
+            // Frame 5 was lost by the recorder, not on the device.
+            Map<String, Object> drops = new LinkedHashMap<>();
+            drops.put(CaptureTrace.KEY_DROPPED_FRAMES, 1);
+            drops.put(CaptureTrace.KEY_DROPPED_CAPTURE_RESULTS, 0);
+            drops.put(CaptureTrace.KEY_DROPPED_PARAMETERS, 0);
+            writer.writeRecorderDrops(System.nanoTime(), drops);
+        }
+
+        CountingSink sink = new CountingSink();
+        CaptureTraceReplayer.Report report;
+        try (CaptureTrace.Reader reader = reader(out.toByteArray())) {
+            report = new CaptureTraceReplayer(sink, 0).replay(reader);
+        }
+
+        assertEquals(3, report.framesRecorded);
+        assertEquals(2, report.framesMissing);
+        assertEquals(1, report.framesDroppedByRecorder);
+        assertEquals(3, report.framesProcessed + report.framesDropped);
+    }
+
+    @Test
+    public void replay_pacesFramesBySensorTimestamp() throws Exception {
+        final long intervalNs = TimeUnit.MILLISECONDS.toNanos(50);
+        final long recordTimeNs = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (CaptureTrace.Writer writer = new CaptureTrace.Writer(out)) {
+            // All records written at once, as by a recorder that fell behind.
+            for (int i = 0; i < 5; i++)
+                writer.writeFrame(recordTimeNs, frame(i), intervalNs * i);
+        }
+
+        CaptureTraceReplayer.Report report;
+        try (CaptureTrace.Reader reader = reader(out.toByteArray())) {
+            report = new CaptureTraceReplayer(new CountingSink(), 2).replay(reader);
+        }
+
+        // 200 ms of sensor time at twice the speed.
+        assertTrue(report.durationNs >= 2 * intervalNs);
+        assertTrue(report.durationNs < 4 * intervalNs);
+        assertEquals(5, report.framesProcessed);
+    }
+
+    @Test
+    public void imageIoDecoder_decodesToRgba() throws Exception {
+        BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "jpg", jpeg));
+
+        ImageIoDecoder decoder = new ImageIoDecoder();
+        ByteBuffer pixels = decoder.decode(jpeg.toByteArray());
+        assertEquals(4 * 2 * FramePipeline.BYTES_PER_PIXEL, pixels.capacity());
+        assertEquals((byte) 0xFF, pixels.get(3));
+        assertNull(decoder.decode(frame(0)));
+    }
+
+    @Test
+    public void replay_holdsImageWhileProcessing() throws Exception {
+        final int frames = 10;
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        CaptureTrace.Writer writer = new CaptureTrace.Writer(first);
+        writer.writeFrame(System.nanoTime(), frame(0), 0);
+        writer.close();
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        writer = new CaptureTrace.Writer(rest);
+        for (int i = 1; i < frames; i++)
+            writer.writeFrame(System.nanoTime(), frame(i), 1000L * i);
+        writer.close();
+        // Continue the first trace with the records of the second one.
+        byte[] records = Arrays.copyOfRange(rest.toByteArray(), CaptureTrace.HEADER_LENGTH, rest.size());
+
+        final CountDownLatch processing = new CountDownLatch(1);
+        final CountDownLatch consumed = new CountDownLatch(1);
+        // Only hand out the remaining frames once the first one is being processed.
+        InputStream gated = new ByteArrayInputStream(records) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                await(processing);
+                int n = super.read(b, off, len);
+                if (n < 0)
+                    consumed.countDown();
+                return n;
+            }
+
+            @Override
+            public synchronized int read() {
+                await(processing);
+                int n = super.read();
+                if (n < 0)
+                    consumed.countDown();
+                return n;
+            }
+        };
+
+        CaptureTraceReplayer.Sink blockingSink = new CountingSink() {
+            @Override
+            public void onFrame(byte[] jpeg, long sensorTimestampNs) {
+                super.onFrame(jpeg, sensorTimestampNs);
+                if (framesSeen == 1) {
+                    processing.countDown();
+                    await(consumed);
+                }
+            }
+        };
+
+        CaptureTraceReplayer.Report report;
+        try (CaptureTrace.Reader reader = new CaptureTrace.Reader(
+                new SequenceInputStream(new ByteArrayInputStream(first.toByteArray()), gated))) {
+            report = new CaptureTraceReplayer(blockingSink, 0).replay(reader);
+        }
+
+        // The first frame holds one image, so only the second frame finds a free one.
+        assertEquals(frames, report.framesRecorded);
+        assertEquals(2, report.framesProcessed);
+        assertEquals(frames - 2, report.framesDropped);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}